@@ -0,0 +1,71 @@
+/**
+ * DefaultSingleFlightKeyGenerator.java (c) Copyright 2014 Graham Webber
+ */
+package org.gw.commons.aspects;
+
+import java.util.Arrays;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+
+/**
+ * The default {@link SingleFlightKeyGenerator}. Two invocations are considered
+ * identical if they are made on the same target instance, through the same
+ * method signature and with deeply equal arguments.
+ *
+ * @author Gman
+ * @since 1.0.0
+ * @version 1.0.0
+ *
+ */
+public class DefaultSingleFlightKeyGenerator implements
+		SingleFlightKeyGenerator {
+
+	@Override
+	public Object generateKey(ProceedingJoinPoint pjp) {
+		return new Key(pjp.getTarget(), pjp.getSignature().toLongString(),
+				pjp.getArgs());
+	}
+
+	/**
+	 * Key comparing the target by identity and the arguments deeply.
+	 */
+	private static final class Key {
+
+		private final Object target;
+		private final String signature;
+		private final Object[] args;
+		private final int hash;
+
+		private Key(Object target, String signature, Object[] args) {
+			this.target = target;
+			this.signature = signature;
+			this.args = args;
+			this.hash = 31 * (31 * System.identityHashCode(target) + signature
+					.hashCode()) + Arrays.deepHashCode(args);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return target == other.target && hash == other.hash
+					&& signature.equals(other.signature)
+					&& Arrays.deepEquals(args, other.args);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public String toString() {
+			return signature + Arrays.deepToString(args);
+		}
+	}
+}
@@ -19,6 +19,11 @@ public abstract class ProfilingAspect {
 	private int potentialIssueTimeInMillis = 100;
 	private int needsAttentionTimeInMillis = 500;
 
+	/**
+	 * When set, invocations are recorded to it instead of being logged
+	 */
+	private volatile TraceRecorder traceRecorder;
+
 	@Pointcut
 	public void profile() {
 	}
@@ -31,6 +36,10 @@ public abstract class ProfilingAspect {
 	 */
 	@Around(value = "profile()", argNames = "pjp")
 	public Object profile(ProceedingJoinPoint pjp) throws Throwable {
+		TraceRecorder recorder = traceRecorder;
+		if (recorder != null) {
+			return record(pjp, recorder);
+		}
 		long start = System.currentTimeMillis();
 		try {
 			/* Run the operation */
@@ -93,6 +102,22 @@ public abstract class ProfilingAspect {
 		}
 
 	}
+
+	/**
+	 * Runs the operation and records its enter and exit time to the given
+	 * {@link TraceRecorder}.
+	 */
+	private Object record(ProceedingJoinPoint pjp, TraceRecorder recorder)
+			throws Throwable {
+		long enter = System.nanoTime();
+		try {
+			/* Run the operation */
+			return pjp.proceed();
+		} finally {
+			recorder.record(pjp.getStaticPart(), enter, System.nanoTime());
+		}
+	}
+
 	public int getSlowTimeInMillis() {
 		return slowTimeInMillis;
 	}
@@ -116,4 +141,17 @@ public abstract class ProfilingAspect {
 	public void setNeedsAttentionTimeInMillis(int needsAttentionTimeInMillis) {
 		this.needsAttentionTimeInMillis = needsAttentionTimeInMillis;
 	}
+
+	public TraceRecorder getTraceRecorder() {
+		return traceRecorder;
+	}
+
+	/**
+	 * Switches the aspect to recording mode. Every profiled invocation is
+	 * then written to the given {@link TraceRecorder} instead of being
+	 * logged. Set to null to return to logging.
+	 */
+	public void setTraceRecorder(TraceRecorder traceRecorder) {
+		this.traceRecorder = traceRecorder;
+	}
 }
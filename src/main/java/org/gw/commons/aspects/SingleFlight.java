@@ -0,0 +1,36 @@
+/**
+ * SingleFlight.java (c) Copyright 2014 Graham Webber
+ */
+package org.gw.commons.aspects;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method whose concurrent invocations with the same key should be
+ * collapsed into a single call. See {@link SingleFlightAspect}.
+ *
+ * @author Gman
+ * @since 1.0.0
+ * @version 1.0.0
+ *
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(value = { ElementType.METHOD })
+public @interface SingleFlight {
+
+	/**
+	 * The {@link SingleFlightKeyGenerator} used to derive the key identifying
+	 * identical invocations. Must have a public no-arg constructor.
+	 */
+	Class<? extends SingleFlightKeyGenerator> keyGenerator() default DefaultSingleFlightKeyGenerator.class;
+
+	/**
+	 * The maximum time a caller will wait for an in-flight invocation to
+	 * complete. A value of 0 or less waits indefinitely.
+	 */
+	long timeoutInMillis() default 0;
+
+}
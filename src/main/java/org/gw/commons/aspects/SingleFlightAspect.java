@@ -0,0 +1,209 @@
+/**
+ * SingleFlightAspect.java (c) Copyright 2014 Graham Webber
+ */
+package org.gw.commons.aspects;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Aspect which collapses concurrent invocations of a {@link SingleFlight}
+ * method into a single call.
+ * <p>
+ * The first caller for a given key (see {@link SingleFlightKeyGenerator})
+ * proceeds with the invocation. Any caller arriving with the same key while
+ * that invocation is in flight does not proceed itself, but waits for it and
+ * shares its result or rethrows its exception. Once the invocation completes
+ * the key is released, so the next caller will proceed again.
+ * <p>
+ * In-flight keys are tracked in a {@link ConcurrentMap} using
+ * {@code putIfAbsent(..)} and {@code remove(key, value)}, so no lock is held
+ * while deciding which caller proceeds.
+ * <p>
+ * <strong>Note: </strong> Waiting callers receive the very same result
+ * instance, so it should be immutable or otherwise safe to share.
+ *
+ * @author Gman
+ * @since 1.0.0
+ * @version 1.0.0
+ *
+ */
+@Aspect
+public class SingleFlightAspect {
+
+	private static Logger logger = LoggerFactory
+			.getLogger(SingleFlightAspect.class);
+
+	/**
+	 * Holds the invocations currently in flight by key
+	 */
+	private final ConcurrentMap<Object, Flight> inFlight = new ConcurrentHashMap<Object, Flight>();
+
+	/**
+	 * Holds a shared instance of each {@link SingleFlightKeyGenerator} type
+	 */
+	private final ConcurrentMap<Class<? extends SingleFlightKeyGenerator>, SingleFlightKeyGenerator> keyGenerators = new ConcurrentHashMap<Class<? extends SingleFlightKeyGenerator>, SingleFlightKeyGenerator>();
+
+	private final AtomicLong invocationCount = new AtomicLong();
+	private final AtomicLong collapsedCount = new AtomicLong();
+	private final AtomicLong timeoutCount = new AtomicLong();
+
+	/**
+	 * Proceeds with the invocation if none with the same key is in flight,
+	 * otherwise waits for and shares the result of the one in flight.
+	 *
+	 * @param pjp
+	 *            The {@link ProceedingJoinPoint}
+	 * @param singleFlight
+	 *            The {@link SingleFlight} annotation on the advised method
+	 * @return The result of the invocation
+	 * @throws Throwable
+	 *             The exception thrown by the invocation, or a
+	 *             {@link SingleFlightException} if waiting timed out or was
+	 *             interrupted
+	 */
+	@Around("execution(* *(..)) && @annotation(singleFlight)")
+	public Object singleFlight(ProceedingJoinPoint pjp,
+			SingleFlight singleFlight) throws Throwable {
+		Object key = getKeyGenerator(singleFlight.keyGenerator()).generateKey(
+				pjp);
+
+		Flight flight = new Flight();
+		Flight existing = inFlight.putIfAbsent(key, flight);
+		if (existing == null) {
+			return proceed(pjp, key, flight);
+		}
+		if (existing.thread == Thread.currentThread()) {
+			/* Re-entrant call from the proceeding thread; waiting would deadlock */
+			invocationCount.incrementAndGet();
+			return pjp.proceed();
+		}
+		collapsedCount.incrementAndGet();
+		return await(key, existing, singleFlight.timeoutInMillis());
+	}
+
+	private Object proceed(ProceedingJoinPoint pjp, Object key, Flight flight)
+			throws Throwable {
+		invocationCount.incrementAndGet();
+		try {
+			/* Run the operation */
+			flight.result = pjp.proceed();
+			return flight.result;
+		} catch (Throwable t) {
+			flight.exception = t;
+			throw t;
+		} finally {
+			inFlight.remove(key, flight);
+			flight.latch.countDown();
+		}
+	}
+
+	private Object await(Object key, Flight flight, long timeoutInMillis)
+			throws Throwable {
+		try {
+			if (timeoutInMillis > 0) {
+				if (!flight.latch.await(timeoutInMillis, TimeUnit.MILLISECONDS)) {
+					timeoutCount.incrementAndGet();
+					throw new SingleFlightException("Timed out after "
+							+ timeoutInMillis
+							+ "ms waiting for in-flight invocation [" + key
+							+ "]");
+				}
+			} else {
+				flight.latch.await();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SingleFlightException(
+					"Interrupted waiting for in-flight invocation [" + key
+							+ "]", e);
+		}
+		if (logger.isTraceEnabled()) {
+			logger.trace("Collapsed invocation [" + key + "]");
+		}
+		if (flight.exception != null) {
+			throw flight.exception;
+		}
+		return flight.result;
+	}
+
+	private SingleFlightKeyGenerator getKeyGenerator(
+			Class<? extends SingleFlightKeyGenerator> type) {
+		SingleFlightKeyGenerator generator = keyGenerators.get(type);
+		if (generator == null) {
+			try {
+				generator = type.newInstance();
+			} catch (Exception e) {
+				throw new IllegalStateException(
+						"Could not instantiate SingleFlightKeyGenerator "
+								+ type.getName(), e);
+			}
+			SingleFlightKeyGenerator existing = keyGenerators.putIfAbsent(
+					type, generator);
+			if (existing != null) {
+				generator = existing;
+			}
+		}
+		return generator;
+	}
+
+	/**
+	 * Returns the number of invocations that actually proceeded.
+	 */
+	public long getInvocationCount() {
+		return invocationCount.get();
+	}
+
+	/**
+	 * Returns the number of invocations that waited for an in-flight
+	 * invocation instead of proceeding, including those that timed out.
+	 */
+	public long getCollapsedCount() {
+		return collapsedCount.get();
+	}
+
+	/**
+	 * Returns the number of invocations that timed out waiting for an
+	 * in-flight invocation.
+	 */
+	public long getTimeoutCount() {
+		return timeoutCount.get();
+	}
+
+	/**
+	 * Returns the number of invocations currently in flight.
+	 */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+
+	/**
+	 * Resets the invocation, collapsed and timeout counts.
+	 */
+	public void resetCounts() {
+		invocationCount.set(0);
+		collapsedCount.set(0);
+		timeoutCount.set(0);
+	}
+
+	/**
+	 * A single in-flight invocation. The result and exception are published
+	 * to waiting threads by the latch.
+	 */
+	private static final class Flight {
+
+		private final CountDownLatch latch = new CountDownLatch(1);
+		private final Thread thread = Thread.currentThread();
+		private Object result;
+		private Throwable exception;
+	}
+}
@@ -0,0 +1,27 @@
+/**
+ * SingleFlightException.java (c) Copyright 2014 Graham Webber
+ */
+package org.gw.commons.aspects;
+
+/**
+ * Thrown by the {@link SingleFlightAspect} when a caller gives up waiting for
+ * an in-flight invocation, either because the configured timeout elapsed or
+ * because the waiting thread was interrupted.
+ *
+ * @author Gman
+ * @since 1.0.0
+ * @version 1.0.0
+ *
+ */
+public class SingleFlightException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public SingleFlightException(String message) {
+		super(message);
+	}
+
+	public SingleFlightException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
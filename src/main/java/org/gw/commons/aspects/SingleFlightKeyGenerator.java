@@ -0,0 +1,29 @@
+/**
+ * SingleFlightKeyGenerator.java (c) Copyright 2014 Graham Webber
+ */
+package org.gw.commons.aspects;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+
+/**
+ * Derives the key used by the {@link SingleFlightAspect} to decide whether two
+ * invocations are identical. The returned key must implement
+ * {@code equals(Object)} and {@code hashCode()} consistently.
+ *
+ * @author Gman
+ * @since 1.0.0
+ * @version 1.0.0
+ *
+ */
+public interface SingleFlightKeyGenerator {
+
+	/**
+	 * Returns the key for the given {@link ProceedingJoinPoint}.
+	 *
+	 * @param pjp
+	 *            The {@link ProceedingJoinPoint} about to be invoked
+	 * @return The key identifying the invocation. Must not be null.
+	 */
+	Object generateKey(ProceedingJoinPoint pjp);
+
+}
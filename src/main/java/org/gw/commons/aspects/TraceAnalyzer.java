@@ -0,0 +1,333 @@
+/**
+ * TraceAnalyzer.java (c) Copyright 2014 Graham Webber
+ */
+package org.gw.commons.aspects;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Reads back a trace written by the {@link TraceRecorder} to reconstruct the
+ * timeline of each thread and find the slowest invocations.
+ * <p>
+ * Can be run from the command line with:
+ * <p>
+ * {@code java org.gw.commons.aspects.TraceAnalyzer <base> [topN] [-timelines]}
+ *
+ * @author Gman
+ * @since 1.0.0
+ * @version 1.0.0
+ *
+ */
+public class TraceAnalyzer {
+
+	/**
+	 * Orders records by enter time, outer invocations before the inner
+	 * invocations they enclose.
+	 */
+	private static final Comparator<TraceRecord> TIMELINE_ORDER = new Comparator<TraceRecord>() {
+		@Override
+		public int compare(TraceRecord a, TraceRecord b) {
+			if (a.getEnterNanos() != b.getEnterNanos()) {
+				return a.getEnterNanos() < b.getEnterNanos() ? -1 : 1;
+			}
+			if (a.getExitNanos() != b.getExitNanos()) {
+				return a.getExitNanos() > b.getExitNanos() ? -1 : 1;
+			}
+			return 0;
+		}
+	};
+
+	private static final Comparator<TraceRecord> DURATION_ORDER = new Comparator<TraceRecord>() {
+		@Override
+		public int compare(TraceRecord a, TraceRecord b) {
+			if (a.getDurationNanos() != b.getDurationNanos()) {
+				return a.getDurationNanos() < b.getDurationNanos() ? -1 : 1;
+			}
+			return 0;
+		}
+	};
+
+	/**
+	 * Holds the records of each thread in timeline order
+	 */
+	private final Map<Long, List<TraceRecord>> timelines = new TreeMap<Long, List<TraceRecord>>();
+
+	/**
+	 * Holds the wall-clock anchor of the oldest segment with records
+	 */
+	private boolean anchored;
+	private long anchorMillis;
+	private long anchorNanos;
+
+	private int recordCount;
+
+	private final SimpleDateFormat dateFormat = new SimpleDateFormat(
+			"yyyy-MM-dd HH:mm:ss");
+
+	/**
+	 * Constructor which reads all the trace files written to the given base
+	 * path.
+	 *
+	 * @param base
+	 *            The base path given to the {@link TraceRecorder}
+	 * @throws IOException
+	 *             If the trace files could not be read or are not valid
+	 */
+	public TraceAnalyzer(File base) throws IOException {
+		Map<Integer, String> joinPoints = readJoinPoints(TraceRecorder
+				.joinPointsFile(base));
+		List<File> segments = TraceRecorder.segmentFiles(base);
+		for (int i = 0; i < segments.size(); i++) {
+			readSegment(segments.get(i), joinPoints, i == segments.size() - 1);
+		}
+		for (List<TraceRecord> timeline : timelines.values()) {
+			Collections.sort(timeline, TIMELINE_ORDER);
+		}
+	}
+
+	private Map<Integer, String> readJoinPoints(File file) throws IOException {
+		Map<Integer, String> joinPoints = new HashMap<Integer, String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int tab = line.indexOf('\t');
+				if (tab > 0) {
+					joinPoints.put(Integer.valueOf(line.substring(0, tab)),
+							line.substring(tab + 1));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return joinPoints;
+	}
+
+	/**
+	 * Reads the records of the given segment.
+	 *
+	 * @param newest
+	 *            Whether this is the newest segment, which may still be being
+	 *            prepared by a running {@link TraceRecorder}
+	 */
+	private void readSegment(File file, Map<Integer, String> joinPoints,
+			boolean newest) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			MappedByteBuffer buffer = raf.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			if (newest
+					&& (buffer.remaining() < TraceRecorder.HEADER_SIZE || buffer
+							.getInt(0) == 0)) {
+				/* Not yet written, so holds no records */
+				return;
+			}
+			if (buffer.remaining() < TraceRecorder.HEADER_SIZE
+					|| buffer.getInt() != TraceRecorder.MAGIC) {
+				throw new IOException("Not a trace file: " + file);
+			}
+			int version = buffer.getInt();
+			if (version != TraceRecorder.VERSION) {
+				throw new IOException("Unsupported trace version " + version
+						+ ": " + file);
+			}
+			long count = buffer.getLong();
+			long millis = buffer.getLong(TraceRecorder.ANCHOR_MILLIS_OFFSET);
+			long nanos = buffer.getLong(TraceRecorder.ANCHOR_NANOS_OFFSET);
+			buffer.position(TraceRecorder.HEADER_SIZE);
+			if (count < 0
+					|| count > buffer.remaining() / TraceRecorder.RECORD_SIZE) {
+				throw new IOException("Not a valid trace file. Header claims "
+						+ count + " records but only room for "
+						+ buffer.remaining() / TraceRecorder.RECORD_SIZE
+						+ ": " + file);
+			}
+			if (count > 0 && !anchored) {
+				anchored = true;
+				anchorMillis = millis;
+				anchorNanos = nanos;
+			}
+			for (long i = 0; i < count; i++) {
+				int id = buffer.getInt();
+				long threadId = buffer.getLong();
+				long enter = buffer.getLong();
+				long exit = buffer.getLong();
+
+				String joinPoint = joinPoints.get(id);
+				if (joinPoint == null) {
+					joinPoint = "#" + id;
+				}
+				List<TraceRecord> timeline = timelines.get(threadId);
+				if (timeline == null) {
+					timeline = new ArrayList<TraceRecord>();
+					timelines.put(threadId, timeline);
+				}
+				timeline.add(new TraceRecord(joinPoint, threadId, enter, exit));
+				recordCount++;
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Returns the records of each thread by thread id, in the order the
+	 * invocations entered.
+	 */
+	public Map<Long, List<TraceRecord>> getTimelines() {
+		return Collections.unmodifiableMap(timelines);
+	}
+
+	/**
+	 * Returns the total number of records read.
+	 */
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * Converts a {@code System.nanoTime()} from the trace to wall-clock time,
+	 * using the anchor written when its oldest segment was started.
+	 *
+	 * @return The millis since epoch
+	 */
+	public long getWallClockMillis(long nanos) {
+		return anchorMillis + floorDiv(nanos - anchorNanos, 1000000);
+	}
+
+	/**
+	 * Returns the slowest invocations across all threads, slowest first.
+	 *
+	 * @param n
+	 *            The maximum number of invocations to return
+	 */
+	public List<TraceRecord> getSlowest(int n) {
+		if (n <= 0) {
+			return Collections.emptyList();
+		}
+		PriorityQueue<TraceRecord> slowest = new PriorityQueue<TraceRecord>(n,
+				DURATION_ORDER);
+		for (List<TraceRecord> timeline : timelines.values()) {
+			for (TraceRecord record : timeline) {
+				if (slowest.size() < n) {
+					slowest.add(record);
+				} else if (record.getDurationNanos() > slowest.peek()
+						.getDurationNanos()) {
+					slowest.poll();
+					slowest.add(record);
+				}
+			}
+		}
+		LinkedList<TraceRecord> result = new LinkedList<TraceRecord>();
+		while (!slowest.isEmpty()) {
+			result.addFirst(slowest.poll());
+		}
+		return result;
+	}
+
+	/**
+	 * Prints the timeline of each thread, indenting invocations by their
+	 * nesting depth, with the wall-clock time each one entered.
+	 */
+	public void printTimelines(PrintStream out) {
+		for (Map.Entry<Long, List<TraceRecord>> entry : timelines.entrySet()) {
+			out.println("Thread " + entry.getKey() + " ("
+					+ entry.getValue().size() + " invocations)");
+			LinkedList<Long> exits = new LinkedList<Long>();
+			for (TraceRecord record : entry.getValue()) {
+				while (!exits.isEmpty()
+						&& exits.peek() <= record.getEnterNanos()) {
+					exits.pop();
+				}
+				StringBuilder line = new StringBuilder();
+				line.append(formatTime(record.getEnterNanos()))
+						.append(' ');
+				for (int i = 0; i < exits.size(); i++) {
+					line.append("  ");
+				}
+				line.append(record.getJoinPoint()).append(' ')
+						.append(formatNanos(record.getDurationNanos()));
+				out.println(line);
+				exits.push(record.getExitNanos());
+			}
+		}
+	}
+
+	/**
+	 * Prints the slowest invocations across all threads, slowest first.
+	 */
+	public void printSlowest(PrintStream out, int n) {
+		out.println("Top " + n + " slowest of " + recordCount
+				+ " invocations");
+		for (TraceRecord record : getSlowest(n)) {
+			out.println(formatNanos(record.getDurationNanos()) + " [thread "
+					+ record.getThreadId() + " at "
+					+ formatTime(record.getEnterNanos()) + "] "
+					+ record.getJoinPoint());
+		}
+	}
+
+	/**
+	 * Formats a {@code System.nanoTime()} from the trace as a wall-clock time
+	 * to the microsecond.
+	 */
+	private String formatTime(long nanos) {
+		long micros = anchorMillis * 1000
+				+ floorDiv(nanos - anchorNanos, 1000);
+		return dateFormat.format(new Date(floorDiv(micros, 1000)))
+				+ String.format(".%06d", micros - floorDiv(micros, 1000000)
+						* 1000000);
+	}
+
+	private static long floorDiv(long x, long y) {
+		long q = x / y;
+		if ((x % y != 0) && ((x < 0) != (y < 0))) {
+			q--;
+		}
+		return q;
+	}
+
+	private static String formatNanos(long nanos) {
+		return String.format("%.3fms", nanos / 1000000d);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: TraceAnalyzer <base> [topN] [-timelines]");
+			System.exit(1);
+		}
+		int topN = 20;
+		boolean timelines = false;
+		for (int i = 1; i < args.length; i++) {
+			if ("-timelines".equals(args[i])) {
+				timelines = true;
+			} else {
+				topN = Integer.parseInt(args[i]);
+			}
+		}
+		TraceAnalyzer analyzer = new TraceAnalyzer(new File(args[0]));
+		if (timelines) {
+			analyzer.printTimelines(System.out);
+			System.out.println();
+		}
+		analyzer.printSlowest(System.out, topN);
+	}
+}
@@ -0,0 +1,58 @@
+/**
+ * TraceRecord.java (c) Copyright 2014 Graham Webber
+ */
+package org.gw.commons.aspects;
+
+/**
+ * A single invocation read back from a trace written by the
+ * {@link TraceRecorder}.
+ *
+ * @author Gman
+ * @since 1.0.0
+ * @version 1.0.0
+ *
+ */
+public class TraceRecord {
+
+	private final String joinPoint;
+	private final long threadId;
+	private final long enterNanos;
+	private final long exitNanos;
+
+	public TraceRecord(String joinPoint, long threadId, long enterNanos,
+			long exitNanos) {
+		this.joinPoint = joinPoint;
+		this.threadId = threadId;
+		this.enterNanos = enterNanos;
+		this.exitNanos = exitNanos;
+	}
+
+	/**
+	 * Returns the signature of the invoked join point.
+	 */
+	public String getJoinPoint() {
+		return joinPoint;
+	}
+
+	public long getThreadId() {
+		return threadId;
+	}
+
+	public long getEnterNanos() {
+		return enterNanos;
+	}
+
+	public long getExitNanos() {
+		return exitNanos;
+	}
+
+	public long getDurationNanos() {
+		return exitNanos - enterNanos;
+	}
+
+	@Override
+	public String toString() {
+		return joinPoint + " [thread " + threadId + "] "
+				+ getDurationNanos() + "ns";
+	}
+}
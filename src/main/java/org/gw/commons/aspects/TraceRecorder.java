@@ -0,0 +1,611 @@
+/**
+ * TraceRecorder.java (c) Copyright 2014 Graham Webber
+ */
+package org.gw.commons.aspects;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.aspectj.lang.JoinPoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records every advised invocation as a compact binary record for offline
+ * analysis with the {@link TraceAnalyzer}.
+ * <p>
+ * Each record holds a join point id, the thread id and the
+ * {@code System.nanoTime()} at which the invocation entered and exited. Records
+ * are first written to a buffer owned by the recording thread and copied to
+ * the trace file when that buffer fills up, by a background pass every
+ * {@code flushIntervalInMillis}, or when {@link #flush()} or {@link #close()}
+ * is called. The background pass also discards the buffers of threads that
+ * have died.
+ * <p>
+ * The trace is written to memory-mapped segment files named
+ * {@code <base>.<n>.trace}, each at most {@code maxFileSize} bytes. The next
+ * segment is created and mapped in advance by a background thread, so that
+ * when a segment is full recording switches to the next one without waiting
+ * on file I/O. The same thread then releases the full segment and deletes the
+ * oldest, so that no more than {@code maxFiles} segments exist at any time.
+ * Each segment header records the wall-clock time at which it was started.
+ * The join point signatures behind the ids are written to
+ * {@code <base>.joinpoints}.
+ * <p>
+ * <strong>Note: </strong> If the JVM dies, only the records made within the
+ * last flush interval are lost. Records already copied to the trace file are
+ * held by the OS and written back even if the JVM is killed.
+ *
+ * @author Gman
+ * @since 1.0.0
+ * @version 1.0.0
+ *
+ */
+public class TraceRecorder {
+
+	private static Logger logger = LoggerFactory
+			.getLogger(TraceRecorder.class);
+
+	/**
+	 * Identifies a trace segment file
+	 */
+	static final int MAGIC = 0x47575452;
+
+	static final int VERSION = 1;
+
+	/**
+	 * The segment header holds, in order: the magic (int), the version (int),
+	 * the record count (long), and the {@code System.currentTimeMillis()}
+	 * (long) and {@code System.nanoTime()} (long) taken together when the
+	 * segment was started, which relate the nanos in its records to
+	 * wall-clock time.
+	 */
+	static final int HEADER_SIZE = 32;
+
+	static final int COUNT_OFFSET = 8;
+	static final int ANCHOR_MILLIS_OFFSET = 16;
+	static final int ANCHOR_NANOS_OFFSET = 24;
+
+	/**
+	 * Join point id, thread id, enter nanos and exit nanos
+	 */
+	static final int RECORD_SIZE = 28;
+
+	static final String SEGMENT_SUFFIX = ".trace";
+
+	static final String JOIN_POINTS_SUFFIX = ".joinpoints";
+
+	private final File base;
+	private final int maxFiles;
+	private final int recordsPerSegment;
+	private final int bufferSize;
+
+	/**
+	 * Holds the id assigned to each join point
+	 */
+	private final ConcurrentMap<JoinPoint.StaticPart, Integer> joinPointIds = new ConcurrentHashMap<JoinPoint.StaticPart, Integer>();
+	private final Writer joinPointWriter;
+
+	/**
+	 * Holds the buffer of every thread that has recorded, until the thread
+	 * has died and its buffer has been drained
+	 */
+	private final Queue<ThreadBuffer> buffers = new ConcurrentLinkedQueue<ThreadBuffer>();
+	private final AtomicInteger bufferCount = new AtomicInteger();
+
+	/**
+	 * The number of buffers at which a newly registering thread first
+	 * discards those of dead threads. Doubles with the live buffers so the
+	 * cost stays constant per thread.
+	 */
+	private static final int MIN_PRUNE_THRESHOLD = 64;
+	private volatile int pruneThreshold = MIN_PRUNE_THRESHOLD;
+
+	private final ThreadLocal<ThreadBuffer> threadBuffer = new ThreadLocal<ThreadBuffer>() {
+		@Override
+		protected ThreadBuffer initialValue() {
+			ThreadBuffer buffer = new ThreadBuffer(bufferSize);
+			buffers.add(buffer);
+			if (bufferCount.incrementAndGet() >= pruneThreshold) {
+				pruneThreshold = Math.max(MIN_PRUNE_THRESHOLD,
+						2 * drainBuffers(false));
+			}
+			return buffer;
+		}
+	};
+
+	/**
+	 * Creates the next segment and releases full ones off the recording
+	 * threads, and periodically drains the thread buffers
+	 */
+	private final ScheduledExecutorService rotator;
+
+	private Segment current;
+	private FutureTask<Segment> next;
+
+	private volatile boolean closed;
+
+	/**
+	 * Constructor using 64MB segments, at most 4 of them, thread buffers of
+	 * 1024 records and a flush interval of 1 second.
+	 *
+	 * @param base
+	 *            The base path of the trace files
+	 * @throws IOException
+	 */
+	public TraceRecorder(File base) throws IOException {
+		this(base, 64 * 1024 * 1024, 4, 1024, 1000);
+	}
+
+	/**
+	 * Constructor which removes any trace files previously written to the
+	 * given base path and opens the first segment.
+	 *
+	 * @param base
+	 *            The base path of the trace files
+	 * @param maxFileSize
+	 *            The maximum size of each segment file in bytes
+	 * @param maxFiles
+	 *            The maximum number of segment files on disk, including the
+	 *            one prepared for the next rotation. At least 2.
+	 * @param bufferSize
+	 *            The number of records buffered per thread before they are
+	 *            copied to the segment file
+	 * @param flushIntervalInMillis
+	 *            How often the thread buffers are copied to the segment file
+	 *            in the background
+	 * @throws IOException
+	 */
+	public TraceRecorder(File base, int maxFileSize, int maxFiles,
+			int bufferSize, long flushIntervalInMillis) throws IOException {
+		if (maxFileSize < HEADER_SIZE + RECORD_SIZE) {
+			throw new IllegalArgumentException("maxFileSize must be at least "
+					+ (HEADER_SIZE + RECORD_SIZE) + " bytes");
+		}
+		if (maxFiles < 2) {
+			throw new IllegalArgumentException("maxFiles must be at least 2");
+		}
+		if (bufferSize < 1 || flushIntervalInMillis < 1) {
+			throw new IllegalArgumentException(
+					"bufferSize and flushIntervalInMillis must be positive");
+		}
+		this.base = base;
+		this.maxFiles = maxFiles;
+		this.recordsPerSegment = (maxFileSize - HEADER_SIZE) / RECORD_SIZE;
+		this.bufferSize = bufferSize;
+
+		for (File file : segmentFiles(base)) {
+			if (!file.delete()) {
+				throw new IOException("Could not delete old trace file "
+						+ file);
+			}
+		}
+		this.joinPointWriter = new FileWriter(joinPointsFile(base));
+		this.rotator = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "TraceRecorder-"
+								+ TraceRecorder.this.base.getName());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		this.current = prepare(0);
+		this.current.start();
+		this.next = new FutureTask<Segment>(new Callable<Segment>() {
+			@Override
+			public Segment call() throws IOException {
+				return prepare(1);
+			}
+		});
+		rotator.execute(next);
+		rotator.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					drainBuffers(true);
+					synchronized (TraceRecorder.this) {
+						joinPointWriter.flush();
+					}
+				} catch (Exception e) {
+					logger.error("Could not flush trace buffers", e);
+				}
+			}
+		}, flushIntervalInMillis, flushIntervalInMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Records a single invocation of the given join point.
+	 *
+	 * @param joinPoint
+	 *            The {@link JoinPoint.StaticPart} of the invocation
+	 * @param enterNanos
+	 *            The {@code System.nanoTime()} before the invocation
+	 * @param exitNanos
+	 *            The {@code System.nanoTime()} after the invocation
+	 */
+	public void record(JoinPoint.StaticPart joinPoint, long enterNanos,
+			long exitNanos) {
+		if (closed) {
+			return;
+		}
+		int id = getJoinPointId(joinPoint);
+		ThreadBuffer buffer = threadBuffer.get();
+		synchronized (buffer) {
+			buffer.bytes.putInt(id).putLong(buffer.threadId)
+					.putLong(enterNanos).putLong(exitNanos);
+			if (!buffer.bytes.hasRemaining()) {
+				drain(buffer);
+			}
+		}
+	}
+
+	/**
+	 * Copies the records of all thread buffers to the trace file and forces
+	 * it to disk.
+	 */
+	public void flush() {
+		drainBuffers(true);
+		synchronized (this) {
+			if (current != null) {
+				current.mapped.force();
+			}
+			try {
+				joinPointWriter.flush();
+			} catch (IOException e) {
+				logger.error("Could not write trace join points", e);
+			}
+		}
+	}
+
+	/**
+	 * Flushes all records and closes the trace files. Records made after
+	 * this are ignored.
+	 */
+	public void close() {
+		flush();
+		synchronized (this) {
+			closed = true;
+			if (current != null) {
+				current.close();
+				current = null;
+			}
+			if (next != null) {
+				/* The prepared segment holds no records */
+				Segment prepared = awaitNext();
+				next = null;
+				if (prepared != null) {
+					prepared.close();
+					if (!prepared.file.delete()) {
+						logger.warn("Could not delete unused trace segment "
+								+ prepared.file);
+					}
+				}
+			}
+			rotator.shutdown();
+			try {
+				joinPointWriter.close();
+			} catch (IOException e) {
+				logger.error("Could not close trace join points", e);
+			}
+		}
+	}
+
+	private int getJoinPointId(JoinPoint.StaticPart joinPoint) {
+		Integer id = joinPointIds.get(joinPoint);
+		if (id == null) {
+			synchronized (joinPointIds) {
+				id = joinPointIds.get(joinPoint);
+				if (id == null) {
+					id = joinPointIds.size();
+					writeJoinPoint(id, joinPoint);
+					joinPointIds.put(joinPoint, id);
+				}
+			}
+		}
+		return id;
+	}
+
+	private synchronized void writeJoinPoint(int id,
+			JoinPoint.StaticPart joinPoint) {
+		try {
+			joinPointWriter.write(id + "\t"
+					+ joinPoint.getSignature().toLongString() + "\n");
+		} catch (IOException e) {
+			logger.error("Could not write trace join point " + joinPoint, e);
+		}
+	}
+
+	/**
+	 * Copies the records of the thread buffers to the segment files and
+	 * discards the buffers of dead threads.
+	 *
+	 * @param all
+	 *            Whether to drain the buffers of live threads too, or only
+	 *            those being discarded
+	 * @return The number of buffers remaining
+	 */
+	private int drainBuffers(boolean all) {
+		int remaining = 0;
+		for (Iterator<ThreadBuffer> it = buffers.iterator(); it.hasNext();) {
+			ThreadBuffer buffer = it.next();
+			boolean dead = !buffer.thread.isAlive();
+			if (all || dead) {
+				synchronized (buffer) {
+					if (buffer.discarded) {
+						/* Already discarded by a concurrent pass */
+						continue;
+					}
+					drain(buffer);
+					if (dead) {
+						buffer.discarded = true;
+						it.remove();
+						bufferCount.decrementAndGet();
+						continue;
+					}
+				}
+			}
+			remaining++;
+		}
+		return remaining;
+	}
+
+	/**
+	 * Returns the number of thread buffers currently held.
+	 */
+	int getBufferCount() {
+		return bufferCount.get();
+	}
+
+	/**
+	 * Copies the records in the given buffer to the segment files. The caller
+	 * must hold the buffer's lock.
+	 */
+	private void drain(ThreadBuffer buffer) {
+		buffer.bytes.flip();
+		write(buffer.bytes);
+		buffer.bytes.clear();
+	}
+
+	private synchronized void write(ByteBuffer records) {
+		while (records.hasRemaining() && !closed) {
+			if (!current.mapped.hasRemaining() && !rotate()) {
+				return;
+			}
+			int length = Math.min(records.remaining(),
+					current.mapped.remaining());
+			ByteBuffer slice = records.duplicate();
+			slice.limit(slice.position() + length);
+			current.mapped.put(slice);
+			records.position(records.position() + length);
+			current.records += length / RECORD_SIZE;
+			current.mapped.putLong(COUNT_OFFSET, current.records);
+		}
+	}
+
+	/**
+	 * Switches to the segment prepared in advance and hands the full one to
+	 * the rotation thread. If the rotation thread has not yet started
+	 * preparing the next segment, it is prepared on the calling thread
+	 * instead, as the rotation thread may itself be the caller.
+	 * The caller must hold this recorder's lock.
+	 *
+	 * @return false if tracing had to be stopped
+	 */
+	private boolean rotate() {
+		Segment prepared = awaitNext();
+		if (prepared == null) {
+			closed = true;
+			return false;
+		}
+		final Segment retired = current;
+		current = prepared;
+		current.start();
+		next = new FutureTask<Segment>(new Callable<Segment>() {
+			@Override
+			public Segment call() throws IOException {
+				retired.close();
+				return prepare(retired.index + 2);
+			}
+		});
+		rotator.execute(next);
+		return true;
+	}
+
+	/**
+	 * Returns the next segment once prepared, or null if it could not be.
+	 */
+	private Segment awaitNext() {
+		/* Does nothing if already run or running */
+		next.run();
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return next.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		} catch (ExecutionException e) {
+			logger.error("Could not open next trace segment. Tracing stopped.",
+					e.getCause());
+			return null;
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Creates and maps the given segment, first deleting the segment it
+	 * replaces so that no more than {@code maxFiles} exist.
+	 */
+	private Segment prepare(int index) throws IOException {
+		File expired = segmentFile(base, index - maxFiles);
+		if (expired.exists() && !expired.delete()) {
+			logger.warn("Could not delete expired trace segment " + expired);
+		}
+		return new Segment(index, segmentFile(base, index), HEADER_SIZE
+				+ recordsPerSegment * RECORD_SIZE);
+	}
+
+	/**
+	 * Releases the mapping of the given buffer immediately rather than
+	 * waiting for it to be garbage collected, which would otherwise keep
+	 * deleted segments on disk. Falls back to the garbage collector if the
+	 * JVM offers no way to do this.
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			/* Java 9+ */
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner",
+					ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			invokeCleaner.invoke(theUnsafe.get(null), buffer);
+			return;
+		} catch (NoSuchMethodException e) {
+			/* Java 6-8, see below */
+		} catch (Exception e) {
+			logger.debug("Could not unmap trace segment", e);
+			return;
+		}
+		try {
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if (cleaner != null) {
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		} catch (Exception e) {
+			logger.debug("Could not unmap trace segment", e);
+		}
+	}
+
+	static File segmentFile(File base, int segment) {
+		return new File(base.getPath() + "." + segment + SEGMENT_SUFFIX);
+	}
+
+	static File joinPointsFile(File base) {
+		return new File(base.getPath() + JOIN_POINTS_SUFFIX);
+	}
+
+	/**
+	 * Returns the segment files existing for the given base path, in the
+	 * order they were written.
+	 */
+	static List<File> segmentFiles(File base) {
+		File dir = base.getAbsoluteFile().getParentFile();
+		String prefix = base.getName() + ".";
+		SortedMap<Integer, File> segments = new TreeMap<Integer, File>();
+		String[] names = dir.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith(prefix) && name.endsWith(SEGMENT_SUFFIX)) {
+					String index = name.substring(prefix.length(),
+							name.length() - SEGMENT_SUFFIX.length());
+					try {
+						segments.put(Integer.valueOf(index), new File(dir,
+								name));
+					} catch (NumberFormatException e) {
+						/* Not one of ours */
+					}
+				}
+			}
+		}
+		return new ArrayList<File>(segments.values());
+	}
+
+	/**
+	 * A mapped segment file
+	 */
+	private static final class Segment {
+
+		private final int index;
+		private final File file;
+		private final RandomAccessFile raf;
+		private final MappedByteBuffer mapped;
+		private long records;
+
+		private Segment(int index, File file, int size) throws IOException {
+			this.index = index;
+			this.file = file;
+			this.raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(size);
+				mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+						0, size);
+			} catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+			mapped.putInt(MAGIC).putInt(VERSION).putLong(0).putLong(0)
+					.putLong(0);
+		}
+
+		/**
+		 * Anchors the segment to the wall-clock time as it becomes current
+		 */
+		private void start() {
+			mapped.putLong(ANCHOR_MILLIS_OFFSET, System.currentTimeMillis());
+			mapped.putLong(ANCHOR_NANOS_OFFSET, System.nanoTime());
+		}
+
+		/**
+		 * Releases the mapping without forcing it; the OS writes the pages
+		 * back on its own.
+		 */
+		private void close() {
+			unmap(mapped);
+			try {
+				raf.close();
+			} catch (IOException e) {
+				logger.error("Could not close trace segment " + file, e);
+			}
+		}
+	}
+
+	/**
+	 * The records of a single thread not yet copied to the segment files
+	 */
+	private static final class ThreadBuffer {
+
+		private final Thread thread = Thread.currentThread();
+		private final long threadId = thread.getId();
+		private final ByteBuffer bytes;
+		private boolean discarded;
+
+		private ThreadBuffer(int records) {
+			bytes = ByteBuffer.allocate(records * RECORD_SIZE);
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/**
+ * SingleFlightAspectTest.java (c) Copyright 2014 Graham Webber
+ */
+package org.gw.commons.aspects;
+
+import org.aspectj.lang.Aspects;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author gman
+ * @since 1.0
+ * @version 1.0
+ *
+ */
+public class SingleFlightAspectTest {
+
+	private static final int THREADS = 10;
+
+	/**
+	 * Fails a test instead of letting it hang if the advice is not woven
+	 */
+	private static final long TIMEOUT = 10000;
+
+	private SingleFlightAspect singleFlightAspect = Aspects
+			.aspectOf(SingleFlightAspect.class);
+
+	private final AtomicInteger calls = new AtomicInteger();
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	@Before
+	public void init() {
+		Assert.assertNotNull(singleFlightAspect);
+		singleFlightAspect.resetCounts();
+	}
+
+	@SingleFlight
+	public String load(String key) throws InterruptedException {
+		calls.incrementAndGet();
+		release.await();
+		return key + "-" + calls.get();
+	}
+
+	@SingleFlight
+	public String fail(String key) throws InterruptedException {
+		calls.incrementAndGet();
+		release.await();
+		throw new IllegalStateException(key);
+	}
+
+	@SingleFlight(timeoutInMillis = 50)
+	public String slow(String key) throws InterruptedException {
+		calls.incrementAndGet();
+		release.await();
+		return key;
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void testCollapseResult() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<String>> futures = submit(executor, new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return load("a");
+				}
+			});
+			awaitCollapsed(THREADS - 1);
+			release.countDown();
+
+			for (Future<String> future : futures) {
+				Assert.assertEquals("a-1", future.get());
+			}
+			Assert.assertEquals(1, calls.get());
+			Assert.assertEquals(1, singleFlightAspect.getInvocationCount());
+			Assert.assertEquals(THREADS - 1,
+					singleFlightAspect.getCollapsedCount());
+			Assert.assertEquals(0, singleFlightAspect.getInFlightCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void testCollapseException() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<String>> futures = submit(executor, new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return fail("b");
+				}
+			});
+			awaitCollapsed(THREADS - 1);
+			release.countDown();
+
+			for (Future<String> future : futures) {
+				try {
+					future.get();
+					Assert.fail("Expected exception");
+				} catch (ExecutionException e) {
+					Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+					Assert.assertEquals("b", e.getCause().getMessage());
+				}
+			}
+			Assert.assertEquals(1, calls.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void testDistinctKeys() throws Exception {
+		release.countDown();
+		Assert.assertEquals("x-1", load("x"));
+		Assert.assertEquals("y-2", load("y"));
+		Assert.assertEquals(2, singleFlightAspect.getInvocationCount());
+		Assert.assertEquals(0, singleFlightAspect.getCollapsedCount());
+	}
+
+	@Test(timeout = TIMEOUT)
+	public void testTimeout() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<String> leader = executor.submit(new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return slow("c");
+				}
+			});
+			awaitInFlight(1);
+			try {
+				slow("c");
+				Assert.fail("Expected timeout");
+			} catch (SingleFlightException e) {
+				Assert.assertEquals(1, singleFlightAspect.getTimeoutCount());
+			}
+			release.countDown();
+			Assert.assertEquals("c", leader.get());
+			Assert.assertEquals(1, calls.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private List<Future<String>> submit(ExecutorService executor,
+			Callable<String> task) throws InterruptedException {
+		List<Future<String>> futures = new ArrayList<Future<String>>();
+		for (int i = 0; i < THREADS; i++) {
+			futures.add(executor.submit(task));
+		}
+		return futures;
+	}
+
+	private void awaitCollapsed(int expected) throws InterruptedException {
+		long deadline = System.nanoTime() + 5000000000L;
+		while (singleFlightAspect.getCollapsedCount() < expected
+				&& System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+		Assert.assertEquals("Collapsed invocations", expected,
+				singleFlightAspect.getCollapsedCount());
+	}
+
+	private void awaitInFlight(int expected) throws InterruptedException {
+		long deadline = System.nanoTime() + 5000000000L;
+		while (singleFlightAspect.getInFlightCount() < expected
+				&& System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+		Assert.assertEquals("In-flight invocations", expected,
+				singleFlightAspect.getInFlightCount());
+	}
+
+}
@@ -0,0 +1,268 @@
+/**
+ * TraceAnalyzerTest.java (c) Copyright 2014 Graham Webber
+ */
+package org.gw.commons.aspects;
+
+import org.aspectj.lang.Aspects;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.annotation.Pointcut;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * @author gman
+ * @since 1.0
+ * @version 1.0
+ *
+ */
+public class TraceAnalyzerTest {
+
+	@Aspect
+	public static class TracedProfilingAspect extends ProfilingAspect {
+
+		@Override
+		@Pointcut("execution(* org.gw.commons.aspects.TraceAnalyzerTest.traced*(..))")
+		public void profile() {
+		}
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private ProfilingAspect profilingAspect = Aspects
+			.aspectOf(TracedProfilingAspect.class);
+
+	@After
+	public void reset() {
+		profilingAspect.setTraceRecorder(null);
+	}
+
+	public void tracedOuter() throws InterruptedException {
+		tracedInner(1);
+		tracedInner(5);
+	}
+
+	public void tracedInner(long millis) throws InterruptedException {
+		Thread.sleep(millis);
+	}
+
+	@Test
+	public void testTimelines() throws Exception {
+		File base = new File(folder.getRoot(), "profile");
+		TraceRecorder recorder = new TraceRecorder(base);
+		profilingAspect.setTraceRecorder(recorder);
+		long before = System.currentTimeMillis();
+
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					tracedOuter();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		thread.start();
+		tracedOuter();
+		thread.join();
+		long after = System.currentTimeMillis();
+		recorder.close();
+
+		TraceAnalyzer analyzer = new TraceAnalyzer(base);
+		Assert.assertEquals(6, analyzer.getRecordCount());
+
+		Map<Long, List<TraceRecord>> timelines = analyzer.getTimelines();
+		Assert.assertEquals(2, timelines.size());
+		List<TraceRecord> timeline = timelines.get(Thread.currentThread()
+				.getId());
+		Assert.assertEquals(3, timeline.size());
+		Assert.assertTrue(timeline.get(0).getJoinPoint()
+				.contains("tracedOuter"));
+		Assert.assertTrue(timeline.get(1).getJoinPoint()
+				.contains("tracedInner"));
+		Assert.assertTrue(timeline.get(0).getExitNanos() >= timeline.get(2)
+				.getExitNanos());
+
+		long entered = analyzer.getWallClockMillis(timeline.get(0)
+				.getEnterNanos());
+		Assert.assertTrue("Entered " + entered + " not in [" + before + ", "
+				+ after + "]", entered >= before - 1 && entered <= after + 1);
+
+		List<TraceRecord> slowest = analyzer.getSlowest(2);
+		Assert.assertEquals(2, slowest.size());
+		for (TraceRecord record : slowest) {
+			Assert.assertTrue(record.getJoinPoint().contains("tracedOuter"));
+		}
+		Assert.assertTrue(slowest.get(0).getDurationNanos() >= slowest.get(1)
+				.getDurationNanos());
+	}
+
+	@Test
+	public void testRotation() throws Exception {
+		File base = new File(folder.getRoot(), "rotated");
+		/*
+		 * Room for 10 records per segment, flushed every 4 records. Of the 3
+		 * segments one is only prepared, and is removed on close.
+		 */
+		TraceRecorder recorder = new TraceRecorder(base,
+				TraceRecorder.HEADER_SIZE + 10 * TraceRecorder.RECORD_SIZE, 3,
+				4, 1000);
+		profilingAspect.setTraceRecorder(recorder);
+		for (int i = 0; i < 50; i++) {
+			tracedInner(0);
+		}
+		recorder.close();
+
+		Assert.assertEquals(2, TraceRecorder.segmentFiles(base).size());
+		TraceAnalyzer analyzer = new TraceAnalyzer(base);
+		Assert.assertEquals(20, analyzer.getRecordCount());
+	}
+
+	@Test
+	public void testRotationReleasesSegments() throws Exception {
+		File maps = new File("/proc/self/maps");
+		Assume.assumeTrue(maps.canRead());
+
+		File base = new File(folder.getRoot(), "released");
+		TraceRecorder recorder = new TraceRecorder(base,
+				TraceRecorder.HEADER_SIZE + 10 * TraceRecorder.RECORD_SIZE, 2,
+				4, 1000);
+		profilingAspect.setTraceRecorder(recorder);
+		for (int i = 0; i < 1000; i++) {
+			tracedInner(0);
+		}
+		recorder.close();
+
+		BufferedReader reader = new BufferedReader(new FileReader(maps));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				Assert.assertFalse("Still mapped: " + line,
+						line.contains(base.getPath()));
+			}
+		} finally {
+			reader.close();
+		}
+		Assert.assertEquals(1, TraceRecorder.segmentFiles(base).size());
+	}
+
+	@Test(timeout = 30000)
+	public void testShortLivedThreads() throws Exception {
+		File base = new File(folder.getRoot(), "threads");
+		TraceRecorder recorder = new TraceRecorder(base,
+				64 * 1024 * 1024, 2, 1024, 50);
+		profilingAspect.setTraceRecorder(recorder);
+
+		Runnable traced = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					tracedInner(0);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		int maxBuffers = 0;
+		for (int i = 0; i < 50; i++) {
+			Thread[] threads = new Thread[100];
+			for (int j = 0; j < threads.length; j++) {
+				threads[j] = new Thread(traced);
+				threads[j].start();
+			}
+			for (Thread thread : threads) {
+				thread.join();
+			}
+			maxBuffers = Math.max(maxBuffers, recorder.getBufferCount());
+		}
+		Assert.assertTrue("Buffers held: " + maxBuffers, maxBuffers < 500);
+
+		/* Records reach the file and dead buffers go without a flush */
+		awaitRecords(base, 5000);
+		long deadline = System.nanoTime() + 5000000000L;
+		while (recorder.getBufferCount() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(0, recorder.getBufferCount());
+		recorder.close();
+	}
+
+	@Test(timeout = 30000)
+	public void testStuckThread() throws Exception {
+		File base = new File(folder.getRoot(), "stuck");
+		TraceRecorder recorder = new TraceRecorder(base,
+				64 * 1024 * 1024, 2, 1024, 50);
+		profilingAspect.setTraceRecorder(recorder);
+
+		final CountDownLatch stuck = new CountDownLatch(1);
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					tracedInner(0);
+					stuck.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		thread.start();
+		try {
+			awaitRecords(base, 1);
+		} finally {
+			stuck.countDown();
+			thread.join();
+			recorder.close();
+		}
+	}
+
+	/**
+	 * Waits for the trace file to hold the expected records, as read while
+	 * still being recorded.
+	 */
+	private void awaitRecords(File base, int expected) throws Exception {
+		long deadline = System.nanoTime() + 5000000000L;
+		int records = 0;
+		while (System.nanoTime() < deadline) {
+			records = new TraceAnalyzer(base).getRecordCount();
+			if (records >= expected) {
+				break;
+			}
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(expected, records);
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncatedSegment() throws Exception {
+		File base = new File(folder.getRoot(), "truncated");
+		TraceRecorder recorder = new TraceRecorder(base);
+		profilingAspect.setTraceRecorder(recorder);
+		tracedInner(0);
+		recorder.close();
+
+		RandomAccessFile segment = new RandomAccessFile(
+				TraceRecorder.segmentFile(base, 0), "rw");
+		try {
+			segment.setLength(TraceRecorder.HEADER_SIZE);
+		} finally {
+			segment.close();
+		}
+		new TraceAnalyzer(base);
+	}
+
+}